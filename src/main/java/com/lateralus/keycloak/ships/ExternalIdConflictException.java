@@ -0,0 +1,11 @@
+package com.lateralus.keycloak.ships;
+
+/**
+ * Thrown when an upsert names an externalId that already belongs to a ship in another realm.
+ */
+public class ExternalIdConflictException extends RuntimeException {
+    
+    public ExternalIdConflictException(String externalId) {
+        super("External ID already used in another realm: " + externalId);
+    }
+}
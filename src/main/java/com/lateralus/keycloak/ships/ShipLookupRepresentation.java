@@ -0,0 +1,34 @@
+package com.lateralus.keycloak.ships;
+
+import java.util.List;
+
+public class ShipLookupRepresentation {
+    private List<String> ids;
+    private List<String> externalIds;
+    private List<String> userIds;
+    
+    // Getters and setters
+    public List<String> getIds() {
+        return ids;
+    }
+    
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+    
+    public List<String> getExternalIds() {
+        return externalIds;
+    }
+    
+    public void setExternalIds(List<String> externalIds) {
+        this.externalIds = externalIds;
+    }
+    
+    public List<String> getUserIds() {
+        return userIds;
+    }
+    
+    public void setUserIds(List<String> userIds) {
+        this.userIds = userIds;
+    }
+}
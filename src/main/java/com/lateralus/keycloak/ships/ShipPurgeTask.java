@@ -0,0 +1,64 @@
+package com.lateralus.keycloak.ships;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Background purge of ships marked as deleted. Each batch runs in its own short transaction
+ * so user_ship is never locked for long, and batches are throttled by a pause and capped per
+ * run, both in count and in time. Scheduled through ClusterAwareScheduledTaskRunner, so only
+ * one node purges at a time as long as a run ends before the cluster lock expires.
+ */
+public class ShipPurgeTask implements ScheduledTask {
+    
+    public static final String TASK_NAME = "ship-purge";
+    
+    private static final Logger logger = Logger.getLogger(ShipPurgeTask.class);
+    
+    private final int batchSize;
+    private final int maxBatchesPerRun;
+    private final long pauseMillis;
+    private final long maxRunMillis;
+    
+    public ShipPurgeTask(int batchSize, int maxBatchesPerRun, long pauseMillis, long maxRunMillis) {
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+        this.pauseMillis = pauseMillis;
+        this.maxRunMillis = maxRunMillis;
+    }
+    
+    @Override
+    public void run(KeycloakSession session) {
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        long deadline = System.currentTimeMillis() + maxRunMillis;
+        int deleted = 0;
+        
+        for (int batch = 0; batch < maxBatchesPerRun && System.currentTimeMillis() < deadline; batch++) {
+            int rows = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                batchSession -> new ShipService(batchSession).purgeDeletedShipsBatch(batchSize));
+            if (rows == 0) {
+                break;
+            }
+            deleted += rows;
+            
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        if (deleted > 0) {
+            logger.debugf("Purged %d rows of deleted ships", deleted);
+        }
+    }
+    
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+}
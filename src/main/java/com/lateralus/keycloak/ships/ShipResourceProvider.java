@@ -1,18 +1,28 @@
 package com.lateralus.keycloak.ships;
 
+import com.lateralus.keycloak.ships.jpa.ShipEntity;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.managers.AppAuthManager;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
 
 public class ShipResourceProvider implements RealmResourceProvider {
     
+    // Upper bound on ids accepted by a single lookup request
+    private static final int MAX_LOOKUP_SIZE = 1000;
+    
     private final KeycloakSession session;
     private final AppAuthManager.AuthResult auth;
     
@@ -42,6 +52,79 @@ public class ShipResourceProvider implements RealmResourceProvider {
         }
     }
     
+    @GET
+    @Path("ships:export")
+    @Produces("application/x-ndjson")
+    public Response exportShips(@QueryParam("after") String after, @QueryParam("gzip") boolean gzip) {
+        try {
+            String realmId = session.getContext().getRealm().getId();
+            // The request transaction is committed before the entity is written, so the
+            // export runs in its own session and transaction while the body is streamed
+            StreamingOutput body = output -> {
+                GZIPOutputStream gzipOutput = gzip ? new GZIPOutputStream(output) : null;
+                try {
+                    KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), exportSession -> {
+                        try {
+                            new ShipService(exportSession).exportShips(realmId, after, gzipOutput != null ? gzipOutput : output);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                if (gzipOutput != null) {
+                    gzipOutput.finish();
+                }
+            };
+            Response.ResponseBuilder response = Response.ok(body);
+            if (gzip) {
+                response.header("Content-Encoding", "gzip");
+            }
+            return response.build();
+        } catch (Exception e) {
+            return Response.serverError().type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+    
+    @POST
+    @Path("ships:lookup")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response lookupShips(ShipLookupRepresentation lookup) {
+        try {
+            if (lookup == null) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "Request body is required")).build();
+            }
+            List<String> ids = lookup.getIds() != null ? lookup.getIds() : List.of();
+            List<String> externalIds = lookup.getExternalIds() != null ? lookup.getExternalIds() : List.of();
+            if (ids.size() + externalIds.size() > MAX_LOOKUP_SIZE) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "At most " + MAX_LOOKUP_SIZE + " ids per lookup")).build();
+            }
+            ShipService shipService = new ShipService(session);
+            List<ShipRepresentation> ships = shipService.lookupShips(session.getContext().getRealm().getId(), ids, externalIds);
+            return Response.ok(ships).build();
+        } catch (Exception e) {
+            return Response.serverError().entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+    
+    @GET
+    @Path("ships:purge-status")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPurgeStatus() {
+        try {
+            ShipService shipService = new ShipService(session);
+            Map<String, Long> status = shipService.getPurgeStatus(session.getContext().getRealm().getId());
+            return Response.ok(status).build();
+        } catch (Exception e) {
+            return Response.serverError().entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+    
     @GET
     @Path("ships/{shipId}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -88,6 +171,45 @@ public class ShipResourceProvider implements RealmResourceProvider {
         }
     }
     
+    @PUT
+    @Path("ships/external/{externalId}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response upsertShipByExternalId(@PathParam("externalId") String externalId, ShipRepresentation ship) {
+        try {
+            if (ship == null) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "Request body is required")).build();
+            }
+            if (externalId.length() > ShipEntity.EXTERNAL_ID_LENGTH) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "External ID longer than " + ShipEntity.EXTERNAL_ID_LENGTH + " characters")).build();
+            }
+            ship.setRealmId(session.getContext().getRealm().getId());
+            ship.setExternalId(externalId);
+            // Runs in its own transaction so a lost insert race can be retried in a fresh one;
+            // by then the competing row is committed and the retry updates it
+            KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+            ShipService.UpsertResult result;
+            try {
+                result = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                    upsertSession -> new ShipService(upsertSession).upsertShipByExternalId(ship));
+            } catch (RuntimeException e) {
+                if (!ShipService.isExternalIdUniqueViolation(e)) {
+                    throw e;
+                }
+                result = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                    upsertSession -> new ShipService(upsertSession).upsertShipByExternalId(ship));
+            }
+            Response.Status status = result.isCreated() ? Response.Status.CREATED : Response.Status.OK;
+            return Response.status(status).entity(result.getShip()).build();
+        } catch (ExternalIdConflictException e) {
+            return Response.status(Response.Status.CONFLICT).entity(Map.of("error", e.getMessage())).build();
+        } catch (Exception e) {
+            return Response.serverError().entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+    
     @DELETE
     @Path("ships/{shipId}")
     public Response deleteShip(@PathParam("shipId") String shipId) {
@@ -106,13 +228,36 @@ public class ShipResourceProvider implements RealmResourceProvider {
     public Response getUserShips(@PathParam("userId") String userId) {
         try {
             ShipService shipService = new ShipService(session);
-            List<ShipRepresentation> ships = shipService.getUserShips(userId);
+            List<ShipRepresentation> ships = shipService.getUserShips(session.getContext().getRealm().getId(), userId);
             return Response.ok(ships).build();
         } catch (Exception e) {
             return Response.serverError().entity(Map.of("error", e.getMessage())).build();
         }
     }
     
+    @POST
+    @Path("users/ships:lookup")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response lookupUserShips(ShipLookupRepresentation lookup) {
+        try {
+            if (lookup == null) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "Request body is required")).build();
+            }
+            List<String> userIds = lookup.getUserIds() != null ? lookup.getUserIds() : List.of();
+            if (userIds.size() > MAX_LOOKUP_SIZE) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", "At most " + MAX_LOOKUP_SIZE + " ids per lookup")).build();
+            }
+            ShipService shipService = new ShipService(session);
+            UserShipsLookupRepresentation result = shipService.lookupUserShips(session.getContext().getRealm().getId(), userIds);
+            return Response.ok(result).build();
+        } catch (Exception e) {
+            return Response.serverError().entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+    
     @POST
     @Path("users/{userId}/ships/{shipId}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -121,6 +266,8 @@ public class ShipResourceProvider implements RealmResourceProvider {
             ShipService shipService = new ShipService(session);
             shipService.assignUserToShip(userId, shipId);
             return Response.ok(Map.of("message", "User assigned to ship successfully")).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.NOT_FOUND).entity(Map.of("error", e.getMessage())).build();
         } catch (Exception e) {
             return Response.serverError().entity(Map.of("error", e.getMessage())).build();
         }
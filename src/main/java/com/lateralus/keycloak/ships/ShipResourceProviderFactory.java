@@ -1,15 +1,31 @@
 package com.lateralus.keycloak.ships;
 
+import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEventListener;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
 import org.keycloak.Config.Scope;
 
 public class ShipResourceProviderFactory implements RealmResourceProviderFactory {
     
     public static final String ID = "ships";
     
+    private static final Logger logger = Logger.getLogger(ShipResourceProviderFactory.class);
+    
+    private long purgeIntervalMillis;
+    private int purgeBatchSize;
+    private int purgeMaxBatchesPerRun;
+    private long purgePauseMillis;
+    
+    private KeycloakSessionFactory sessionFactory;
+    private ProviderEventListener realmRemovedListener;
+    
     @Override
     public String getId() {
         return ID;
@@ -22,16 +38,69 @@ public class ShipResourceProviderFactory implements RealmResourceProviderFactory
     
     @Override
     public void init(Scope config) {
-        // Initialize if needed
+        purgeIntervalMillis = config.getLong("purgeIntervalMillis", 30000L);
+        purgeBatchSize = config.getInt("purgeBatchSize", 500);
+        purgeMaxBatchesPerRun = config.getInt("purgeMaxBatchesPerRun", 20);
+        purgePauseMillis = config.getLong("purgePauseMillis", 100L);
+        
+        // ClusterAwareScheduledTaskRunner holds the cluster lock for purgeIntervalMillis / 1000 seconds,
+        // so a shorter interval would let every node purge at once
+        if (purgeIntervalMillis < 1000) {
+            throw new IllegalArgumentException("purgeIntervalMillis must be at least 1000, was " + purgeIntervalMillis);
+        }
+        if (purgeBatchSize < 1) {
+            throw new IllegalArgumentException("purgeBatchSize must be at least 1, was " + purgeBatchSize);
+        }
+        if (purgeMaxBatchesPerRun < 1) {
+            throw new IllegalArgumentException("purgeMaxBatchesPerRun must be at least 1, was " + purgeMaxBatchesPerRun);
+        }
+        if (purgePauseMillis < 0 || purgePauseMillis >= purgeRunMillis()) {
+            throw new IllegalArgumentException("purgePauseMillis must be between 0 and half of purgeIntervalMillis, was " + purgePauseMillis);
+        }
+        
+        // A run must end before the lock expires; the pauses alone may take at most half the interval
+        if (purgePauseMillis > 0 && purgeMaxBatchesPerRun * purgePauseMillis > purgeRunMillis()) {
+            int capped = (int) (purgeRunMillis() / purgePauseMillis);
+            logger.warnf("purgeMaxBatchesPerRun %d does not fit in purgeIntervalMillis %d with purgePauseMillis %d, using %d",
+                purgeMaxBatchesPerRun, purgeIntervalMillis, purgePauseMillis, capped);
+            purgeMaxBatchesPerRun = capped;
+        }
+    }
+    
+    // Time a purge run may take, leaving the rest of the interval as margin on the cluster lock
+    private long purgeRunMillis() {
+        return purgeIntervalMillis / 2;
     }
     
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Post-initialization if needed
+        sessionFactory = factory;
+        
+        // Ships of a removed realm are only marked here; ShipPurgeTask deletes the rows later
+        realmRemovedListener = event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+                new ShipService(removed.getKeycloakSession()).deleteRealmShips(removed.getRealm().getId());
+            }
+        };
+        factory.register(realmRemovedListener);
+        
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            ShipPurgeTask task = new ShipPurgeTask(purgeBatchSize, purgeMaxBatchesPerRun, purgePauseMillis, purgeRunMillis());
+            session.getProvider(TimerProvider.class).schedule(
+                new ClusterAwareScheduledTaskRunner(factory, task, purgeIntervalMillis),
+                purgeIntervalMillis, task.getTaskName());
+        });
     }
     
     @Override
     public void close() {
-        // Cleanup if needed
+        if (sessionFactory == null) {
+            return;
+        }
+        sessionFactory.unregister(realmRemovedListener);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+            session -> session.getProvider(TimerProvider.class).cancelTask(ShipPurgeTask.TASK_NAME));
+        sessionFactory = null;
     }
-}
\ No newline at end of file
+}
@@ -5,13 +5,69 @@ import com.lateralus.keycloak.ships.jpa.UserShipEntity;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
 import jakarta.persistence.TypedQuery;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MariaDBDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.StandardBasicTypes;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ShipService {
     
+    // Postgres upsert; xmax is 0 only for a freshly inserted row version. The WHERE clause keeps
+    // an externalId owned by another realm from being taken over (no row is returned).
+    private static final String UPSERT_BY_EXTERNAL_ID_POSTGRES =
+        "INSERT INTO ship (id, name, description, imo, type, organization_id, realm_id, external_id, " +
+        "ship_equipment, crew_ai_mode, created_at, updated_at) " +
+        "VALUES (:id, :name, :description, :imo, :type, :organizationId, :realmId, :externalId, " +
+        ":shipEquipment, :crewAiMode, :now, :now) " +
+        "ON CONFLICT (external_id) DO UPDATE SET name = EXCLUDED.name, description = EXCLUDED.description, " +
+        "imo = EXCLUDED.imo, type = EXCLUDED.type, organization_id = EXCLUDED.organization_id, " +
+        "ship_equipment = COALESCE(EXCLUDED.ship_equipment, ship.ship_equipment), " +
+        "crew_ai_mode = EXCLUDED.crew_ai_mode, updated_at = EXCLUDED.updated_at " +
+        "WHERE ship.realm_id = EXCLUDED.realm_id " +
+        "RETURNING id, created_at, ship_equipment, (xmax = 0) AS inserted";
+    
+    // MySQL/MariaDB upsert; every assignment keeps the old value when the conflicting row belongs to
+    // another realm. Neither reports the written row, so it is read back by UPSERT_RESULT_MYSQL.
+    private static final String UPSERT_BY_EXTERNAL_ID_MYSQL =
+        "INSERT INTO ship (id, name, description, imo, type, organization_id, realm_id, external_id, " +
+        "ship_equipment, crew_ai_mode, created_at, updated_at) " +
+        "VALUES (:id, :name, :description, :imo, :type, :organizationId, :realmId, :externalId, " +
+        ":shipEquipment, :crewAiMode, :now, :now) " +
+        "ON DUPLICATE KEY UPDATE name = IF(realm_id = VALUES(realm_id), VALUES(name), name), " +
+        "description = IF(realm_id = VALUES(realm_id), VALUES(description), description), " +
+        "imo = IF(realm_id = VALUES(realm_id), VALUES(imo), imo), " +
+        "type = IF(realm_id = VALUES(realm_id), VALUES(type), type), " +
+        "organization_id = IF(realm_id = VALUES(realm_id), VALUES(organization_id), organization_id), " +
+        "ship_equipment = IF(realm_id = VALUES(realm_id), COALESCE(VALUES(ship_equipment), ship_equipment), ship_equipment), " +
+        "crew_ai_mode = IF(realm_id = VALUES(realm_id), VALUES(crew_ai_mode), crew_ai_mode), " +
+        "updated_at = IF(realm_id = VALUES(realm_id), VALUES(updated_at), updated_at)";
+    
+    private static final String UPSERT_RESULT_MYSQL =
+        "SELECT id, realm_id, created_at, ship_equipment FROM ship WHERE external_id = :externalId";
+    
+    // Unique index on ship.external_id (ship-changelog.xml)
+    private static final String EXTERNAL_ID_INDEX = "idx_ship_external_id";
+    
+    // Values bound per IN clause; stays well below the 1000-element limit some databases enforce.
+    // Package-private so the statement-budget tests derive their chunk counts from it.
+    static final int IN_CLAUSE_CHUNK_SIZE = 500;
+    
+    // Rows read per cursor round trip and between persistence context clears during export
+    private static final int EXPORT_BATCH_SIZE = 500;
+    
     private final KeycloakSession session;
     private final EntityManager em;
     private final ObjectMapper objectMapper = new ObjectMapper();
@@ -39,7 +95,7 @@ public class ShipService {
     
     public ShipRepresentation getShip(String shipId) {
         ShipEntity entity = em.find(ShipEntity.class, shipId);
-        return entity != null ? toRepresentation(entity) : null;
+        return entity != null && entity.getDeletedAt() == null ? toRepresentation(entity) : null;
     }
     
     public ShipRepresentation createShip(ShipRepresentation ship) {
@@ -55,7 +111,7 @@ public class ShipService {
     
     public ShipRepresentation updateShip(ShipRepresentation ship) {
         ShipEntity entity = em.find(ShipEntity.class, ship.getId());
-        if (entity == null) {
+        if (entity == null || entity.getDeletedAt() != null) {
             throw new IllegalArgumentException("Ship not found: " + ship.getId());
         }
         
@@ -66,19 +122,201 @@ public class ShipService {
         return toRepresentation(entity);
     }
     
+    /**
+     * Creates or updates the ship identified by its externalId. On Postgres this is a single
+     * INSERT ... ON CONFLICT statement, and on MySQL/MariaDB an INSERT ... ON DUPLICATE KEY UPDATE
+     * followed by a read of the written row. Other databases lock the existing row before deciding,
+     * so two concurrent calls for a new externalId can both insert and the loser fails with a
+     * unique violation (see isExternalIdUniqueViolation) and must be retried in a new transaction.
+     * Throws ExternalIdConflictException if the externalId belongs to a ship in another realm.
+     */
+    public UpsertResult upsertShipByExternalId(ShipRepresentation ship) {
+        if (isPostgres()) {
+            return upsertShipByExternalIdPostgres(ship);
+        }
+        if (dialect() instanceof MySQLDialect) {
+            return upsertShipByExternalIdMySql(ship);
+        }
+        
+        ShipEntity entity = em.createNamedQuery("findShipByExternalId", ShipEntity.class)
+            .setParameter("externalId", ship.getExternalId())
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .getResultStream()
+            .findFirst()
+            .orElse(null);
+        if (entity == null) {
+            return new UpsertResult(createShip(ship), true);
+        }
+        if (!entity.getRealmId().equals(ship.getRealmId())) {
+            throw new ExternalIdConflictException(ship.getExternalId());
+        }
+        
+        updateEntityFromRepresentation(entity, ship);
+        em.flush();
+        return new UpsertResult(toRepresentation(entity), false);
+    }
+    
+    private UpsertResult upsertShipByExternalIdPostgres(ShipRepresentation ship) {
+        ShipEntity values = new ShipEntity();
+        updateEntityFromRepresentation(values, ship);
+        long now = System.currentTimeMillis();
+        
+        List<?> rows = bindUpsertValues(UPSERT_BY_EXTERNAL_ID_POSTGRES, UUID.randomUUID().toString(), values, now)
+            .getResultList();
+        if (rows.isEmpty()) {
+            throw new ExternalIdConflictException(ship.getExternalId());
+        }
+        
+        // Build the response from the statement's RETURNING clause instead of reading the row back
+        Object[] row = (Object[]) rows.get(0);
+        values.setId((String) row[0]);
+        // created_at may be NULL on rows written before it was populated
+        values.setCreatedAt(row[1] != null ? ((Number) row[1]).longValue() : null);
+        values.setShipEquipment((String) row[2]);
+        values.setUpdatedAt(now);
+        return new UpsertResult(toRepresentation(values), (Boolean) row[3]);
+    }
+    
+    private UpsertResult upsertShipByExternalIdMySql(ShipRepresentation ship) {
+        ShipEntity values = new ShipEntity();
+        updateEntityFromRepresentation(values, ship);
+        long now = System.currentTimeMillis();
+        String id = UUID.randomUUID().toString();
+        
+        bindUpsertValues(UPSERT_BY_EXTERNAL_ID_MYSQL, id, values, now).executeUpdate();
+        
+        // The row is locked by this transaction until commit, so the read sees what was written.
+        // The affected-row count is not used: with CLIENT_FOUND_ROWS an unchanged row also reports 1.
+        Object[] row = (Object[]) em.createNativeQuery(UPSERT_RESULT_MYSQL)
+            .setParameter("externalId", values.getExternalId())
+            .getSingleResult();
+        if (!values.getRealmId().equals(row[1])) {
+            throw new ExternalIdConflictException(ship.getExternalId());
+        }
+        
+        values.setId((String) row[0]);
+        values.setCreatedAt(row[2] != null ? ((Number) row[2]).longValue() : null);
+        values.setShipEquipment((String) row[3]);
+        values.setUpdatedAt(now);
+        return new UpsertResult(toRepresentation(values), id.equals(row[0]));
+    }
+    
+    // Bind with explicit types; untyped nulls in native queries make the database guess the type
+    private NativeQuery<?> bindUpsertValues(String sql, String id, ShipEntity values, long now) {
+        NativeQuery<?> query = em.createNativeQuery(sql).unwrap(NativeQuery.class);
+        return query
+            .setParameter("id", id, StandardBasicTypes.STRING)
+            .setParameter("name", values.getName(), StandardBasicTypes.STRING)
+            .setParameter("description", values.getDescription(), StandardBasicTypes.STRING)
+            .setParameter("imo", values.getImo(), StandardBasicTypes.STRING)
+            .setParameter("type", values.getType(), StandardBasicTypes.STRING)
+            .setParameter("organizationId", values.getOrganizationId(), StandardBasicTypes.STRING)
+            .setParameter("realmId", values.getRealmId(), StandardBasicTypes.STRING)
+            .setParameter("externalId", values.getExternalId(), StandardBasicTypes.STRING)
+            .setParameter("shipEquipment", values.getShipEquipment(), StandardBasicTypes.STRING)
+            .setParameter("crewAiMode", values.getCrewAiMode(), StandardBasicTypes.STRING)
+            .setParameter("now", now, StandardBasicTypes.LONG);
+    }
+    
+    /**
+     * Whether the failure is a unique violation of the externalId index, i.e. a lost insert race
+     * that succeeds when retried. NOT NULL, foreign key and check violations are not retryable.
+     */
+    public static boolean isExternalIdUniqueViolation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            // Keycloak's EntityManager wrapper rethrows it as a ModelDuplicateException caused by this
+            if (cause instanceof ConstraintViolationException violation) {
+                // Not every dialect extracts the constraint name; the driver's message names it too
+                String constraint = violation.getConstraintName() != null
+                    ? violation.getConstraintName() : violation.getSQLException().getMessage();
+                return constraint != null && constraint.toLowerCase(Locale.ROOT).contains(EXTERNAL_ID_INDEX);
+            }
+        }
+        return false;
+    }
+    
+    private boolean isPostgres() {
+        return dialect() instanceof PostgreSQLDialect;
+    }
+    
+    private Dialect dialect() {
+        return em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+            .getJdbcServices().getDialect();
+    }
+    
+    /**
+     * Marks the ship as deleted so it disappears from reads immediately, and releases its
+     * externalId for reuse. Its assignments and the row itself are removed later in small
+     * batches by ShipPurgeTask.
+     */
     public void deleteShip(String shipId) {
-        // First delete all user-ship relationships
-        em.createNamedQuery("deleteUserShipByShipId")
-            .setParameter("shipId", shipId)
-            .executeUpdate();
-            
-        // Then delete the ship
-        em.createNamedQuery("deleteShipById")
+        em.createNamedQuery("markShipDeleted")
             .setParameter("id", shipId)
+            .setParameter("deletedAt", System.currentTimeMillis())
+            .executeUpdate();
+    }
+    
+    /**
+     * Marks every ship of a realm as deleted, leaving the row removal to ShipPurgeTask.
+     */
+    public void deleteRealmShips(String realmId) {
+        em.createNamedQuery("markRealmShipsDeleted")
+            .setParameter("realmId", realmId)
+            .setParameter("deletedAt", System.currentTimeMillis())
             .executeUpdate();
     }
     
-    public List<ShipRepresentation> getUserShips(String userId) {
+    /**
+     * Deletes at most batchSize rows of ships pending purge. Deleted ships without assignments
+     * go first, up to batchSize of them in one statement; otherwise up to batchSize assignments
+     * of the oldest pending ship are removed. Returns the number of rows deleted, or 0 when
+     * nothing is pending.
+     */
+    public int purgeDeletedShipsBatch(int batchSize) {
+        // No assignments left on these ships, so the fk_user_ship_ship cascade has nothing to lock
+        List<String> crewless = em.createNamedQuery("findCrewlessShipIdsPendingPurge", String.class)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (!crewless.isEmpty()) {
+            return em.createNamedQuery("deleteCrewlessPurgedShipsByIds")
+                .setParameter("ids", crewless)
+                .executeUpdate();
+        }
+        
+        List<String> shipIds = em.createNamedQuery("findShipIdsPendingPurge", String.class)
+            .setMaxResults(1)
+            .getResultList();
+        if (shipIds.isEmpty()) {
+            return 0;
+        }
+        String shipId = shipIds.get(0);
+        
+        List<String> userIds = em.createNamedQuery("findUserIdsByShipId", String.class)
+            .setParameter("shipId", shipId)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (userIds.isEmpty()) {
+            // Crew removed concurrently; the ship is picked up as crewless by the next batch
+            return 0;
+        }
+        return em.createNamedQuery("deleteUserShipsByShipIdAndUserIds")
+            .setParameter("shipId", shipId)
+            .setParameter("userIds", userIds)
+            .executeUpdate();
+    }
+    
+    public Map<String, Long> getPurgeStatus(String realmId) {
+        Map<String, Long> status = new LinkedHashMap<>();
+        status.put("pendingShips", em.createNamedQuery("countShipsPendingPurgeByRealm", Long.class)
+            .setParameter("realmId", realmId)
+            .getSingleResult());
+        status.put("pendingAssignments", em.createNamedQuery("countUserShipsPendingPurgeByRealm", Long.class)
+            .setParameter("realmId", realmId)
+            .getSingleResult());
+        return status;
+    }
+    
+    public List<ShipRepresentation> getUserShips(String realmId, String userId) {
         TypedQuery<UserShipEntity> query = em.createNamedQuery("findUserShips", UserShipEntity.class);
         query.setParameter("userId", userId);
         
@@ -90,22 +328,99 @@ public class ShipService {
             return Collections.emptyList();
         }
         
-        return shipIds.stream()
-            .map(this::getShip)
-            .filter(Objects::nonNull)
+        return findShipsByIds(realmId, shipIds).stream()
+            .map(this::toRepresentation)
+            .collect(Collectors.toList());
+    }
+    
+    /**
+     * Returns the ship assignments of many users at once, limited to ships of the given realm.
+     * Every requested user is present in the result (with an empty list if unassigned) and each
+     * ship is represented only once.
+     */
+    public UserShipsLookupRepresentation lookupUserShips(String realmId, Collection<String> userIds) {
+        Map<String, List<String>> users = new LinkedHashMap<>();
+        for (String userId : userIds) {
+            users.put(userId, new ArrayList<>());
+        }
+        
+        List<UserShipEntity> assignments = queryInChunks(users.keySet(), chunk ->
+            em.createNamedQuery("findUserShipsByUserIds", UserShipEntity.class)
+                .setParameter("userIds", chunk)
+                .getResultList());
+        Set<String> shipIds = new LinkedHashSet<>();
+        for (UserShipEntity assignment : assignments) {
+            users.get(assignment.getUserId()).add(assignment.getShipId());
+            shipIds.add(assignment.getShipId());
+        }
+        
+        Map<String, ShipRepresentation> ships = new LinkedHashMap<>();
+        for (ShipEntity ship : findShipsByIds(realmId, shipIds)) {
+            ships.put(ship.getId(), toRepresentation(ship));
+        }
+        // Drop dangling assignments so every listed id resolves in the ships map
+        users.values().forEach(ids -> ids.retainAll(ships.keySet()));
+        
+        UserShipsLookupRepresentation result = new UserShipsLookupRepresentation();
+        result.setUsers(users);
+        result.setShips(ships);
+        return result;
+    }
+    
+    /**
+     * Returns the realm's ships matching any of the given ids or externalIds, each at most once.
+     */
+    public List<ShipRepresentation> lookupShips(String realmId, Collection<String> ids, Collection<String> externalIds) {
+        Map<String, ShipEntity> ships = new LinkedHashMap<>();
+        if (ids != null) {
+            for (ShipEntity ship : findShipsByIds(realmId, ids)) {
+                ships.put(ship.getId(), ship);
+            }
+        }
+        if (externalIds != null) {
+            List<ShipEntity> byExternalId = queryInChunks(new LinkedHashSet<>(externalIds), chunk ->
+                em.createNamedQuery("findShipsByExternalIds", ShipEntity.class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("externalIds", chunk)
+                    .getResultList());
+            for (ShipEntity ship : byExternalId) {
+                ships.putIfAbsent(ship.getId(), ship);
+            }
+        }
+        
+        return ships.values().stream()
+            .map(this::toRepresentation)
             .collect(Collectors.toList());
     }
     
+    private List<ShipEntity> findShipsByIds(String realmId, Collection<String> ids) {
+        return queryInChunks(new LinkedHashSet<>(ids), chunk ->
+            em.createNamedQuery("findShipsByIds", ShipEntity.class)
+                .setParameter("realmId", realmId)
+                .setParameter("ids", chunk)
+                .getResultList());
+    }
+    
+    private <T> List<T> queryInChunks(Collection<String> values, Function<List<String>, List<T>> query) {
+        List<String> all = new ArrayList<>(values);
+        List<T> results = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            results.addAll(query.apply(all.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, all.size()))));
+        }
+        return results;
+    }
+    
     public void assignUserToShip(String userId, String shipId) {
+        // A deleted ship would accept the row, which then silently disappears with the purge
+        ShipEntity ship = em.find(ShipEntity.class, shipId);
+        if (ship == null || ship.getDeletedAt() != null) {
+            throw new IllegalArgumentException("Ship not found: " + shipId);
+        }
+        
         // Check if assignment already exists
-        List<UserShipEntity> existing = em.createNamedQuery("findUserShips", UserShipEntity.class)
-            .setParameter("userId", userId)
-            .getResultList();
-            
-        boolean alreadyAssigned = existing.stream()
-            .anyMatch(us -> us.getShipId().equals(shipId));
+        UserShipEntity existing = em.find(UserShipEntity.class, new UserShipEntity.UserShipId(userId, shipId));
             
-        if (!alreadyAssigned) {
+        if (existing == null) {
             UserShipEntity userShip = new UserShipEntity();
             userShip.setUserId(userId);
             userShip.setShipId(shipId);
@@ -121,6 +436,92 @@ public class ShipService {
             .executeUpdate();
     }
     
+    /**
+     * Streams all ships of a realm as NDJSON, each ship line followed by its user-ship lines.
+     * Ships and assignments are read through a single forward-only cursor so the dump is a
+     * consistent snapshot, and the persistence context is cleared every EXPORT_BATCH_SIZE rows
+     * so memory stays flat regardless of realm size. Every line carries a "key"; passing the
+     * last received key as {@code after} resumes an interrupted export right after that line.
+     * A final "end" line is written only when the export completed, so a dump without it was
+     * truncated.
+     */
+    public void exportShips(String realmId, String after, OutputStream out) throws IOException {
+        String afterShipId = "";
+        String afterUserId = "";
+        if (after != null && !after.isEmpty()) {
+            String[] key = after.split("/", 2);
+            afterShipId = key[0];
+            afterUserId = key.length > 1 ? key[1] : "";
+        }
+        
+        // The ship named by the resume key has already been written
+        String lastShipId = afterShipId.isEmpty() ? null : afterShipId;
+        int rows = 0;
+        long shipLines = 0;
+        long userShipLines = 0;
+        
+        try (Stream<Object[]> stream = em.createNamedQuery("exportShipsWithUsersByRealm", Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("afterShipId", afterShipId)
+                .setParameter("afterUserId", afterUserId)
+                .setHint("org.hibernate.fetchSize", exportFetchSize())
+                .setHint("org.hibernate.readOnly", true)
+                .getResultStream()) {
+            Iterator<Object[]> it = stream.iterator();
+            while (it.hasNext()) {
+                Object[] row = it.next();
+                ShipEntity ship = (ShipEntity) row[0];
+                UserShipEntity userShip = (UserShipEntity) row[1];
+                
+                if (!ship.getId().equals(lastShipId)) {
+                    writeExportLine(out, "ship", ship.getId(), "ship", toRepresentation(ship));
+                    lastShipId = ship.getId();
+                    shipLines++;
+                }
+                if (userShip != null) {
+                    Map<String, Object> assignment = new LinkedHashMap<>();
+                    assignment.put("userId", userShip.getUserId());
+                    assignment.put("shipId", userShip.getShipId());
+                    assignment.put("assignedAt", userShip.getAssignedAt());
+                    writeExportLine(out, "user_ship", userShip.getShipId() + "/" + userShip.getUserId(), "userShip", assignment);
+                    userShipLines++;
+                }
+                
+                if (++rows % EXPORT_BATCH_SIZE == 0) {
+                    em.clear();
+                    out.flush();
+                }
+            }
+        }
+        
+        Map<String, Object> end = new LinkedHashMap<>();
+        end.put("type", "end");
+        end.put("ships", shipLines);
+        end.put("userShips", userShipLines);
+        out.write(objectMapper.writeValueAsBytes(end));
+        out.write('\n');
+        out.flush();
+    }
+    
+    // MySQL Connector/J buffers the whole result set unless the fetch size is Integer.MIN_VALUE;
+    // MariaDB, PostgreSQL, Oracle and SQL Server drivers stream with a positive fetch size
+    private int exportFetchSize() {
+        Dialect dialect = dialect();
+        if (dialect instanceof MySQLDialect && !(dialect instanceof MariaDBDialect)) {
+            return Integer.MIN_VALUE;
+        }
+        return EXPORT_BATCH_SIZE;
+    }
+    
+    private void writeExportLine(OutputStream out, String type, String key, String field, Object value) throws IOException {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("type", type);
+        line.put("key", key);
+        line.put(field, value);
+        out.write(objectMapper.writeValueAsBytes(line));
+        out.write('\n');
+    }
+    
     private ShipRepresentation toRepresentation(ShipEntity entity) {
         ShipRepresentation rep = new ShipRepresentation();
         rep.setId(entity.getId());
@@ -168,4 +569,22 @@ public class ShipService {
             }
         }
     }
+    
+    public static class UpsertResult {
+        private final ShipRepresentation ship;
+        private final boolean created;
+        
+        public UpsertResult(ShipRepresentation ship, boolean created) {
+            this.ship = ship;
+            this.created = created;
+        }
+        
+        public ShipRepresentation getShip() {
+            return ship;
+        }
+        
+        public boolean isCreated() {
+            return created;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,28 @@
+package com.lateralus.keycloak.ships;
+
+import java.util.List;
+import java.util.Map;
+
+public class UserShipsLookupRepresentation {
+    // userId -> ids of the ships assigned to that user
+    private Map<String, List<String>> users;
+    // shipId -> ship, each ship included once however many users share it
+    private Map<String, ShipRepresentation> ships;
+    
+    // Getters and setters
+    public Map<String, List<String>> getUsers() {
+        return users;
+    }
+    
+    public void setUsers(Map<String, List<String>> users) {
+        this.users = users;
+    }
+    
+    public Map<String, ShipRepresentation> getShips() {
+        return ships;
+    }
+    
+    public void setShips(Map<String, ShipRepresentation> ships) {
+        this.ships = ships;
+    }
+}
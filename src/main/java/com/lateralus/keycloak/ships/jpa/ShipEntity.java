@@ -5,13 +5,29 @@ import jakarta.persistence.*;
 @Entity
 @Table(name = "ship")
 @NamedQueries({
-    @NamedQuery(name = "findShipsByRealm", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId"),
-    @NamedQuery(name = "findShipsByOrganization", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId AND s.organizationId = :organizationId"),
-    @NamedQuery(name = "findShipById", query = "SELECT s FROM ShipEntity s WHERE s.id = :id"),
-    @NamedQuery(name = "deleteShipById", query = "DELETE FROM ShipEntity s WHERE s.id = :id")
+    @NamedQuery(name = "findShipsByRealm", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "findShipsByOrganization", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId AND s.organizationId = :organizationId AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "findShipById", query = "SELECT s FROM ShipEntity s WHERE s.id = :id AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "findShipByExternalId", query = "SELECT s FROM ShipEntity s WHERE s.externalId = :externalId"),
+    @NamedQuery(name = "findShipsByIds", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId AND s.id IN :ids AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "findShipsByExternalIds", query = "SELECT s FROM ShipEntity s WHERE s.realmId = :realmId AND s.externalId IN :externalIds AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "deleteShipById", query = "DELETE FROM ShipEntity s WHERE s.id = :id"),
+    @NamedQuery(name = "markShipDeleted", query = "UPDATE ShipEntity s SET s.deletedAt = :deletedAt, s.externalId = NULL WHERE s.id = :id AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "markRealmShipsDeleted", query = "UPDATE ShipEntity s SET s.deletedAt = :deletedAt, s.externalId = NULL WHERE s.realmId = :realmId AND s.deletedAt IS NULL"),
+    @NamedQuery(name = "findShipIdsPendingPurge", query = "SELECT s.id FROM ShipEntity s WHERE s.deletedAt IS NOT NULL ORDER BY s.deletedAt"),
+    @NamedQuery(name = "findCrewlessShipIdsPendingPurge", query = "SELECT s.id FROM ShipEntity s WHERE s.deletedAt IS NOT NULL " +
+        "AND NOT EXISTS (SELECT us FROM UserShipEntity us WHERE us.shipId = s.id)"),
+    @NamedQuery(name = "deleteCrewlessPurgedShipsByIds", query = "DELETE FROM ShipEntity s WHERE s.id IN :ids AND s.deletedAt IS NOT NULL " +
+        "AND NOT EXISTS (SELECT us FROM UserShipEntity us WHERE us.shipId = s.id)"),
+    @NamedQuery(name = "countShipsPendingPurgeByRealm", query = "SELECT COUNT(s) FROM ShipEntity s WHERE s.realmId = :realmId AND s.deletedAt IS NOT NULL"),
+    @NamedQuery(name = "exportShipsWithUsersByRealm", query = "SELECT s, us FROM ShipEntity s LEFT JOIN UserShipEntity us ON us.shipId = s.id " +
+        "WHERE s.realmId = :realmId AND s.deletedAt IS NULL AND (s.id > :afterShipId OR (s.id = :afterShipId AND us.userId > :afterUserId)) " +
+        "ORDER BY s.id, us.userId")
 })
 public class ShipEntity {
     
+    public static final int EXTERNAL_ID_LENGTH = 24;
+    
     @Id
     @Column(name = "id", length = 36)
     private String id;
@@ -34,7 +50,7 @@ public class ShipEntity {
     @Column(name = "realm_id", length = 36, nullable = false)
     private String realmId;
     
-    @Column(name = "external_id", length = 24, unique = true)
+    @Column(name = "external_id", length = EXTERNAL_ID_LENGTH, unique = true)
     private String externalId;
     
     @Column(name = "ship_equipment", columnDefinition = "TEXT")
@@ -49,6 +65,10 @@ public class ShipEntity {
     @Column(name = "updated_at")
     private Long updatedAt;
     
+    // Set when the ship is deleted; the row is hidden from reads and purged in the background
+    @Column(name = "deleted_at")
+    private Long deletedAt;
+    
     // Remove the incorrect ManyToMany relationship
     // UserShipEntity should be managed separately as it's a join table entity
     
@@ -149,6 +169,14 @@ public class ShipEntity {
         this.updatedAt = updatedAt;
     }
     
+    public Long getDeletedAt() {
+        return deletedAt;
+    }
+    
+    public void setDeletedAt(Long deletedAt) {
+        this.deletedAt = deletedAt;
+    }
+    
     // Removed getUsers/setUsers methods as we manage relationships through UserShipEntity directly
     
     @PrePersist
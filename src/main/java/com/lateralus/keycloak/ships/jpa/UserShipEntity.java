@@ -8,9 +8,14 @@ import java.io.Serializable;
 @IdClass(UserShipEntity.UserShipId.class)
 @NamedQueries({
     @NamedQuery(name = "findUserShips", query = "SELECT us FROM UserShipEntity us WHERE us.userId = :userId"),
+    @NamedQuery(name = "findUserShipsByUserIds", query = "SELECT us FROM UserShipEntity us WHERE us.userId IN :userIds"),
     @NamedQuery(name = "findShipUsers", query = "SELECT us FROM UserShipEntity us WHERE us.shipId = :shipId"),
     @NamedQuery(name = "deleteUserShip", query = "DELETE FROM UserShipEntity us WHERE us.userId = :userId AND us.shipId = :shipId"),
-    @NamedQuery(name = "deleteUserShipByShipId", query = "DELETE FROM UserShipEntity us WHERE us.shipId = :shipId")
+    @NamedQuery(name = "deleteUserShipByShipId", query = "DELETE FROM UserShipEntity us WHERE us.shipId = :shipId"),
+    @NamedQuery(name = "findUserIdsByShipId", query = "SELECT us.userId FROM UserShipEntity us WHERE us.shipId = :shipId"),
+    @NamedQuery(name = "deleteUserShipsByShipIdAndUserIds", query = "DELETE FROM UserShipEntity us WHERE us.shipId = :shipId AND us.userId IN :userIds"),
+    @NamedQuery(name = "countUserShipsPendingPurgeByRealm", query = "SELECT COUNT(us) FROM UserShipEntity us, ShipEntity s " +
+        "WHERE us.shipId = s.id AND s.realmId = :realmId AND s.deletedAt IS NOT NULL")
 })
 public class UserShipEntity {
     
@@ -0,0 +1,57 @@
+package com.lateralus.keycloak.ships.theme;
+
+import org.keycloak.services.resource.RealmResourceProvider;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Response;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the askchief login theme's content-hashed assets (dotLottie player and animation).
+ * Only fingerprinted names produced by the build are accepted, so every response can be
+ * cached as immutable for a year.
+ */
+public class ThemeAssetResourceProvider implements RealmResourceProvider {
+    
+    private static final String ASSET_ROOT = "askchief-assets/";
+    
+    private static final Pattern HASHED_ASSET = Pattern.compile("[a-z0-9-]+\\.[0-9a-f]{16}\\.(mjs|lottie)");
+    
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+        "mjs", "text/javascript",
+        "lottie", "application/zip"
+    );
+    
+    private static final CacheControl IMMUTABLE = CacheControl.valueOf("public, max-age=31536000, immutable");
+    
+    @Override
+    public Object getResource() {
+        return this;
+    }
+    
+    @GET
+    @Path("{asset}")
+    public Response getAsset(@PathParam("asset") String asset) {
+        Matcher matcher = HASHED_ASSET.matcher(asset);
+        if (!matcher.matches()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        
+        InputStream content = getClass().getClassLoader().getResourceAsStream(ASSET_ROOT + asset);
+        if (content == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        
+        return Response.ok(content, CONTENT_TYPES.get(matcher.group(1)))
+            .cacheControl(IMMUTABLE)
+            .build();
+    }
+    
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
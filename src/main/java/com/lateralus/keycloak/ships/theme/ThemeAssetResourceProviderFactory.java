@@ -0,0 +1,37 @@
+package com.lateralus.keycloak.ships.theme;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.Config.Scope;
+
+public class ThemeAssetResourceProviderFactory implements RealmResourceProviderFactory {
+    
+    public static final String ID = "askchief-assets";
+    
+    @Override
+    public String getId() {
+        return ID;
+    }
+    
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new ThemeAssetResourceProvider();
+    }
+    
+    @Override
+    public void init(Scope config) {
+        // Initialize if needed
+    }
+    
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Post-initialization if needed
+    }
+    
+    @Override
+    public void close() {
+        // Cleanup if needed
+    }
+}
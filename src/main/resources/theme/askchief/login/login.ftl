@@ -1,9 +1,13 @@
 <#import "template.ftl" as layout>
 
 <!-- Ask Chief Lottie Animation - positioned above everything -->
+<#-- Player and animation are fingerprinted at build time and served with immutable caching by the askchief-assets realm resource -->
+<#assign askchiefAssetsPath = url.resourcesPath?keep_before("/resources/") + "/realms/" + realm.name?url + "/askchief-assets">
 <div class="kc-lottie-container-header">
     <div class="kc-lottie-container">
-        <div class="kc-lottie-player">
+        <div class="kc-lottie-player"
+             <#if properties.askchiefPlayer?has_content>data-player-src="${askchiefAssetsPath}/${properties.askchiefPlayer}"</#if>
+             data-animation-src="${askchiefAssetsPath}/${properties.askchiefAnimation}">
             <img src="${url.resourcesPath}/img/transparent.svg" alt="" style="width: 150px; height: 150px;" />
         </div>
     </div>
@@ -82,6 +86,8 @@
 
         <!-- Social login section removed completely -->
 
+        <script src="${url.resourcesPath}/js/lottie-loader.js" defer></script>
+
     </div>
     <#elseif section = "info" >
         <#if realm.password && realm.registrationAllowed && !registrationDisabled??>
@@ -1,156 +1,71 @@
-// Simple Lottie animation loader for Keycloak
-// Falls back to CSS animation if Lottie is not available
-
-// IMMEDIATE DEBUG - this should always show
-console.log('🔥 LOTTIE SCRIPT EXECUTING - IMMEDIATE');
-console.log('🔥 Current URL:', window.location.href);
-console.log('🔥 Document ready state:', document.readyState);
+// Lottie animation loader for the Ask Chief login theme
+// The dotLottie player and animation are served by the extension itself (see login.ftl),
+// so the page works without any third-party CDN. Falls back to the static image on error.
 
 (function() {
     'use strict';
-    
-    console.log('🔥 Inside IIFE wrapper');
-    
-    // Function to check for lottie container (will be called after DOM loads)
-    function findLottieContainer() {
-        const lottieContainer = document.querySelector('.kc-lottie-player');
-        console.log('🔥 Lottie container search result:', lottieContainer);
-        
-        if (!lottieContainer) {
-            console.log('🔥 NO LOTTIE CONTAINER FOUND');
-            // Let's see what containers DO exist
-            const allDivs = document.querySelectorAll('div');
-            console.log('🔥 All divs on page:', allDivs.length);
-            console.log('🔥 Sample div classes:', Array.from(allDivs).slice(0, 5).map(d => d.className));
-            return null;
+
+    function showFallback() {
+        var container = document.querySelector('.kc-lottie-container-header');
+        if (container) {
+            container.classList.add('kc-lottie-fallback');
         }
-        
-        console.log('✅ Lottie container found!');
-        return lottieContainer;
     }
-    
-    // Try to load the actual Lottie file - adjust path for Keycloak resources
-    const lottieUrl = '/resources/j3qk5/login/askchief/img/Chief Demo v4 LOT.lottie';
-    
-    // Function to load Lottie via CDN if available
+
     function loadLottieAnimation() {
-        console.log('🎭 Attempting to load Lottie animation...');
-        const lottieContainer = findLottieContainer();
-        
+        var lottieContainer = document.querySelector('.kc-lottie-player');
         if (!lottieContainer) {
-            console.log('❌ Cannot load Lottie - container not found');
             return;
         }
-        
-        console.log('📍 Lottie container found:', lottieContainer);
-        console.log('🔗 Lottie URL:', lottieUrl);
-        
-        // Load dotLottie player for .lottie files
-        const script = document.createElement('script');
-        script.src = 'https://unpkg.com/@dotlottie/player-component@2.7.12/dist/dotlottie-player.mjs';
+
+        var playerUrl = lottieContainer.getAttribute('data-player-src');
+        var animationUrl = lottieContainer.getAttribute('data-animation-src');
+        if (!playerUrl || !animationUrl) {
+            showFallback();
+            return;
+        }
+
+        var script = document.createElement('script');
+        script.src = playerUrl;
         script.type = 'module';
         script.onload = function() {
-            console.log('✅ DotLottie player loaded successfully');
             try {
-                console.log('🎬 Starting DotLottie animation load...');
-                
-                // Clear the container
-                lottieContainer.innerHTML = '';
-                
-                // Create dotlottie-player element
-                const player = document.createElement('dotlottie-player');
-                player.setAttribute('src', lottieUrl);
+                var player = document.createElement('dotlottie-player');
+                player.setAttribute('src', animationUrl);
                 player.setAttribute('background', 'transparent');
                 player.setAttribute('speed', '1');
                 player.setAttribute('style', 'width: 150px; height: 150px;');
                 player.setAttribute('loop', '');
                 player.setAttribute('autoplay', '');
-                
-                // Add event listeners
-                player.addEventListener('ready', function() {
-                    console.log('🎉 DotLottie animation loaded successfully!');
-                });
-                
-                player.addEventListener('error', function(e) {
-                    console.log('❌ DotLottie animation error:', e);
-                    console.log('🔄 Showing SVG fallback');
-                    // Show SVG fallback by adding CSS class
-                    const container = document.querySelector('.kc-lottie-container-header');
-                    if (container) {
-                        container.classList.add('kc-lottie-fallback');
-                    }
-                });
-                
-                // Add player to container
+                player.addEventListener('error', showFallback);
+
+                lottieContainer.innerHTML = '';
                 lottieContainer.appendChild(player);
-                
             } catch (e) {
-                console.log('❌ DotLottie loading failed:', e);
-                console.log('🔄 Showing SVG fallback');
-                // Show SVG fallback by adding CSS class
-                const container = document.querySelector('.kc-lottie-container-header');
-                if (container) {
-                    container.classList.add('kc-lottie-fallback');
-                }
-            }
-        };
-        script.onerror = function(e) {
-            console.log('❌ DotLottie CDN failed to load:', e);
-            console.log('🔄 Showing SVG fallback');
-            // Show SVG fallback by adding CSS class
-            const container = document.querySelector('.kc-lottie-container-header');
-            if (container) {
-                container.classList.add('kc-lottie-fallback');
+                showFallback();
             }
         };
+        script.onerror = showFallback;
         document.head.appendChild(script);
     }
-    
-    // Add some dynamic interaction to the SVG fallback
-    function enhanceSVGAnimation() {
-        const lottieContainer = findLottieContainer();
-        if (!lottieContainer) {
-            console.log('❌ Cannot enhance SVG - container not found');
+
+    // Start the animation only once the page has loaded and the browser is idle,
+    // so the login form is painted and interactive first
+    function scheduleAnimation() {
+        if (window.matchMedia && window.matchMedia('(prefers-reduced-motion: reduce)').matches) {
+            showFallback();
             return;
         }
-        
-        const svg = lottieContainer.querySelector('svg');
-        if (svg) {
-            // Add click interaction
-            svg.addEventListener('click', function() {
-                svg.style.transform = 'scale(0.95)';
-                setTimeout(() => {
-                    svg.style.transform = 'scale(1)';
-                }, 150);
-            });
-            
-            // Add random subtle movements
-            setInterval(() => {
-                if (Math.random() > 0.7) {
-                    svg.style.transform = 'translateY(-2px) scale(1.01)';
-                    setTimeout(() => {
-                        svg.style.transform = 'translateY(0) scale(1)';
-                    }, 300);
-                }
-            }, 3000);
+        if (window.requestIdleCallback) {
+            window.requestIdleCallback(loadLottieAnimation, { timeout: 2000 });
+        } else {
+            setTimeout(loadLottieAnimation, 200);
         }
     }
-    
-    // Initialize when DOM is ready
-    console.log('🚀 Lottie loader script started');
-    console.log('📊 Document ready state:', document.readyState);
-    
-    if (document.readyState === 'loading') {
-        console.log('⏳ Waiting for DOM to load...');
-        document.addEventListener('DOMContentLoaded', function() {
-            console.log('✅ DOM loaded, initializing...');
-            enhanceSVGAnimation();
-            // Try to load Lottie after a delay
-            setTimeout(loadLottieAnimation, 500);
-        });
+
+    if (document.readyState === 'complete') {
+        scheduleAnimation();
     } else {
-        console.log('✅ DOM already loaded, initializing immediately...');
-        enhanceSVGAnimation();
-        setTimeout(loadLottieAnimation, 500);
+        window.addEventListener('load', scheduleAnimation);
     }
-})();
\ No newline at end of file
+})();
@@ -0,0 +1,80 @@
+package com.lateralus.keycloak.ships;
+
+import org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection provider for the test persistence unit that counts every row read from a JDBC
+ * result set, whether it backs an entity, a scalar projection or a native query.
+ */
+public class RowCountingConnectionProvider extends DriverManagerConnectionProviderImpl {
+
+    private static final AtomicLong rowsFetched = new AtomicLong();
+
+    static void reset() {
+        rowsFetched.set(0);
+    }
+
+    static long rowsFetched() {
+        return rowsFetched.get();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(super.getConnection(), Connection.class);
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        // Return the pooled connection itself, not the proxy, so it is not wrapped twice
+        if (Proxy.isProxyClass(connection.getClass())) {
+            connection = (Connection) ((Counting) Proxy.getInvocationHandler(connection)).target;
+        }
+        super.closeConnection(connection);
+    }
+
+    private static <T> T wrap(T target, Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(RowCountingConnectionProvider.class.getClassLoader(), new Class<?>[] {type}, new Counting(target)));
+    }
+
+    private static final class Counting implements InvocationHandler {
+        private final Object target;
+
+        private Counting(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (target instanceof ResultSet && method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                rowsFetched.incrementAndGet();
+            }
+            Class<?> returnType = method.getReturnType();
+            if (result != null && returnType.isInterface()
+                    && (Statement.class.isAssignableFrom(returnType) || returnType == ResultSet.class)) {
+                return wrapAs(result, returnType);
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T wrapAs(Object result, Class<T> type) {
+            return wrap((T) result, type);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.lateralus.keycloak.ships;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the NDJSON export's line order, resume keys and end trailer. Ships a < b < c, where
+ * a has two crew members, b has none and c has one.
+ */
+class ShipServiceExportTest extends ShipServiceTestSupport {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private String a;
+    private String b;
+    private String c;
+    private String a1;
+    private String a2;
+    private String c1;
+
+    @BeforeEach
+    void seedFleet() {
+        List<String> ships = new ArrayList<>(seedShips(3));
+        Collections.sort(ships);
+        a = ships.get(0);
+        b = ships.get(1);
+        c = ships.get(2);
+
+        List<String> users = new ArrayList<>(seedUsers(3));
+        Collections.sort(users);
+        seedAssignments(users.subList(0, 2), List.of(a));
+        seedAssignments(users.subList(2, 3), List.of(c));
+        a1 = a + "/" + users.get(0);
+        a2 = a + "/" + users.get(1);
+        c1 = c + "/" + users.get(2);
+    }
+
+    @Test
+    void fullExport() {
+        List<Map<String, Object>> lines = export(null);
+
+        assertEquals(List.of(a, a1, a2, b, c, c1, "end"), keys(lines));
+        assertEquals(List.of("ship", "user_ship", "user_ship", "ship", "ship", "user_ship", "end"), types(lines));
+        assertEquals(3, lines.get(6).get("ships"));
+        assertEquals(3, lines.get(6).get("userShips"));
+    }
+
+    @Test
+    void resumeAfterShipLineSkipsThatShip() {
+        assertEquals(List.of(a1, a2, b, c, c1, "end"), keys(export(a)));
+    }
+
+    @Test
+    void resumeAfterAssignmentContinuesWithinShip() {
+        assertEquals(List.of(a2, b, c, c1, "end"), keys(export(a1)));
+    }
+
+    @Test
+    void resumeAfterLastAssignmentMovesToNextShip() {
+        assertEquals(List.of(b, c, c1, "end"), keys(export(a2)));
+    }
+
+    @Test
+    void resumeAfterShipWithoutAssignments() {
+        assertEquals(List.of(c, c1, "end"), keys(export(b)));
+    }
+
+    @Test
+    void resumeAfterLastLineWritesOnlyTrailer() {
+        List<Map<String, Object>> lines = export(c1);
+
+        assertEquals(List.of("end"), keys(lines));
+        assertEquals(0, lines.get(0).get("ships"));
+        assertEquals(0, lines.get(0).get("userShips"));
+    }
+
+    private List<Map<String, Object>> export(String after) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        inTransaction(service -> {
+            try {
+                service.exportShips(realmId, after, out);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        List<Map<String, Object>> lines = new ArrayList<>();
+        for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) {
+            try {
+                lines.add(objectMapper.readValue(line, Map.class));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return lines;
+    }
+
+    private static List<Object> keys(List<Map<String, Object>> lines) {
+        List<Object> keys = new ArrayList<>();
+        for (Map<String, Object> line : lines) {
+            keys.add("end".equals(line.get("type")) ? "end" : line.get("key"));
+        }
+        return keys;
+    }
+
+    private static List<Object> types(List<Map<String, Object>> lines) {
+        List<Object> types = new ArrayList<>();
+        for (Map<String, Object> line : lines) {
+            types.add(line.get("type"));
+        }
+        return types;
+    }
+}
@@ -0,0 +1,88 @@
+package com.lateralus.keycloak.ships;
+
+import com.lateralus.keycloak.ships.jpa.ShipEntity;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import jakarta.persistence.Persistence;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exercises the INSERT ... ON DUPLICATE KEY UPDATE upsert, which only runs on MySQL and MariaDB.
+ * Skipped when Docker is not available.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ShipServiceMySqlUpsertTest extends ShipServiceTestSupport {
+
+    @Container
+    private static final MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0");
+
+    // Hides ShipServiceTestSupport.createDatabase so the suite runs on the container instead of H2
+    @BeforeAll
+    static void createDatabase() {
+        emf = Persistence.createEntityManagerFactory("ships-test", Map.of(
+            "hibernate.connection.driver_class", "com.mysql.cj.jdbc.Driver",
+            "hibernate.connection.url", mysql.getJdbcUrl(),
+            "hibernate.connection.username", mysql.getUsername(),
+            "hibernate.connection.password", mysql.getPassword()));
+    }
+
+    @Test
+    void insertsThenUpdates() {
+        ShipRepresentation ship = newShip();
+        ShipService.UpsertResult[] results = new ShipService.UpsertResult[3];
+
+        inTransaction(service -> results[0] = service.upsertShipByExternalId(ship));
+        ship.setName("Renamed");
+        inTransaction(service -> results[1] = service.upsertShipByExternalId(ship));
+        // Same values again: still reported as an update, not a create
+        inTransaction(service -> results[2] = service.upsertShipByExternalId(ship));
+
+        assertTrue(results[0].isCreated());
+        assertNotNull(results[0].getShip().getCreatedAt());
+        assertFalse(results[1].isCreated());
+        assertFalse(results[2].isCreated());
+        assertEquals(results[0].getShip().getId(), results[1].getShip().getId());
+        assertEquals(results[0].getShip().getCreatedAt(), results[1].getShip().getCreatedAt());
+        assertEquals("Renamed", results[1].getShip().getName());
+    }
+
+    @Test
+    void keepsEquipmentWhenOmitted() {
+        ShipRepresentation ship = newShip();
+        ship.setShipEquipment(Map.of("radar", "x-band"));
+        inTransaction(service -> service.upsertShipByExternalId(ship));
+
+        ship.setShipEquipment(null);
+        ShipService.UpsertResult[] result = new ShipService.UpsertResult[1];
+        inTransaction(service -> result[0] = service.upsertShipByExternalId(ship));
+
+        assertEquals(Map.of("radar", "x-band"), result[0].getShip().getShipEquipment());
+    }
+
+    @Test
+    void rejectsExternalIdOfAnotherRealmWithoutChangingIt() {
+        ShipRepresentation ship = newShip();
+        ShipService.UpsertResult[] original = new ShipService.UpsertResult[1];
+        inTransaction(service -> original[0] = service.upsertShipByExternalId(ship));
+
+        ShipRepresentation intruder = newShip();
+        intruder.setExternalId(ship.getExternalId());
+        intruder.setRealmId("other-realm");
+        intruder.setName("Taken over");
+        assertThrows(ExternalIdConflictException.class,
+            () -> inTransaction(service -> service.upsertShipByExternalId(intruder)));
+        em.getTransaction().rollback();
+        em.clear();
+
+        assertEquals(ship.getName(), em.find(ShipEntity.class, original[0].getShip().getId()).getName());
+    }
+}
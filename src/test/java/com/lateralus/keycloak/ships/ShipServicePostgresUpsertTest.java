@@ -0,0 +1,97 @@
+package com.lateralus.keycloak.ships;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import jakarta.persistence.Persistence;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exercises the single-statement INSERT ... ON CONFLICT upsert, which only runs on PostgreSQL.
+ * Skipped when Docker is not available.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ShipServicePostgresUpsertTest extends ShipServiceTestSupport {
+
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    // Hides ShipServiceTestSupport.createDatabase so the suite runs on the container instead of H2
+    @BeforeAll
+    static void createDatabase() {
+        emf = Persistence.createEntityManagerFactory("ships-test", Map.of(
+            "hibernate.connection.driver_class", "org.postgresql.Driver",
+            "hibernate.connection.url", postgres.getJdbcUrl(),
+            "hibernate.connection.username", postgres.getUsername(),
+            "hibernate.connection.password", postgres.getPassword()));
+    }
+
+    @Test
+    void insertsThenUpdates() {
+        ShipRepresentation ship = newShip();
+        ShipService.UpsertResult[] results = new ShipService.UpsertResult[2];
+
+        inTransaction(service -> results[0] = service.upsertShipByExternalId(ship));
+        ship.setName("Renamed");
+        inTransaction(service -> results[1] = service.upsertShipByExternalId(ship));
+
+        assertTrue(results[0].isCreated());
+        assertNotNull(results[0].getShip().getId());
+        assertNotNull(results[0].getShip().getCreatedAt());
+        assertFalse(results[1].isCreated());
+        assertEquals(results[0].getShip().getId(), results[1].getShip().getId());
+        assertEquals(results[0].getShip().getCreatedAt(), results[1].getShip().getCreatedAt());
+        assertEquals("Renamed", results[1].getShip().getName());
+    }
+
+    @Test
+    void bindsNullOptionalFieldsAndKeepsEquipmentWhenOmitted() {
+        ShipRepresentation ship = newShip();
+        ship.setShipEquipment(Map.of("radar", "x-band"));
+        inTransaction(service -> service.upsertShipByExternalId(ship));
+
+        ship.setShipEquipment(null);
+        ShipService.UpsertResult[] result = new ShipService.UpsertResult[1];
+        inTransaction(service -> result[0] = service.upsertShipByExternalId(ship));
+
+        assertNull(result[0].getShip().getDescription());
+        assertNull(result[0].getShip().getImo());
+        assertEquals(Map.of("radar", "x-band"), result[0].getShip().getShipEquipment());
+    }
+
+    @Test
+    void rejectsExternalIdOfAnotherRealm() {
+        ShipRepresentation ship = newShip();
+        inTransaction(service -> service.upsertShipByExternalId(ship));
+
+        ship.setRealmId("other-realm");
+        assertThrows(ExternalIdConflictException.class,
+            () -> inTransaction(service -> service.upsertShipByExternalId(ship)));
+    }
+
+    @Test
+    void updatesLegacyRowWithoutCreatedAt() {
+        ShipRepresentation ship = newShip();
+        inTransaction(service -> service.upsertShipByExternalId(ship));
+        em.getTransaction().begin();
+        em.createNativeQuery("UPDATE ship SET created_at = NULL WHERE external_id = :externalId")
+            .setParameter("externalId", ship.getExternalId())
+            .executeUpdate();
+        em.getTransaction().commit();
+
+        ShipService.UpsertResult[] result = new ShipService.UpsertResult[1];
+        inTransaction(service -> result[0] = service.upsertShipByExternalId(ship));
+
+        assertFalse(result[0].isCreated());
+        assertNull(result[0].getShip().getCreatedAt());
+    }
+}
@@ -0,0 +1,202 @@
+package com.lateralus.keycloak.ships;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the ShipService call behind each ShipResourceProvider endpoint against an embedded
+ * database and fails when it issues more SQL statements or loads more rows than its declared
+ * budget. Each operation is measured at several data sizes so that N+1 patterns, whose
+ * statement count grows with the data, are caught even when the small case looks fine.
+ * Rows are every row read from a JDBC result set (see RowCountingConnectionProvider), so scalar
+ * and native queries count as well as entity loads.
+ */
+class ShipServiceStatementBudgetTest extends ShipServiceTestSupport {
+
+    // Smaller than the largest purge data size so the per-batch bound is actually exercised
+    private static final int PURGE_BATCH_SIZE = 50;
+
+    // Used only to clear ships left pending by other tests before a purge is measured
+    private static final int DRAIN_BATCH_SIZE = 500;
+
+    private static Statistics statistics;
+
+    @BeforeAll
+    static void enableStatistics() {
+        statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void getShips(int size) {
+        seedShips(size);
+        assertBudget("getShips", 1, size, service -> service.getShips(realmId, null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void getShip(int size) {
+        List<String> shipIds = seedShips(size);
+        assertBudget("getShip", 1, 1, service -> service.getShip(shipIds.get(0)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void createShip(int size) {
+        seedShips(size);
+        assertBudget("createShip", 1, 0, service -> service.createShip(newShip()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void updateShip(int size) {
+        List<String> shipIds = seedShips(size);
+        ShipRepresentation ship = newShip();
+        ship.setId(shipIds.get(0));
+        assertBudget("updateShip", 2, 1, service -> service.updateShip(ship));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void deleteShip(int size) {
+        String shipId = seedShips(1).get(0);
+        seedAssignments(seedUsers(size), List.of(shipId));
+        assertBudget("deleteShip", 1, 0, service -> service.deleteShip(shipId));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100})
+    void purgeDeletedShipsBatch(int size) {
+        drainPurge();
+        String shipId = seedShips(1).get(0);
+        seedAssignments(seedUsers(size), List.of(shipId));
+        inTransaction(service -> service.deleteShip(shipId));
+        assertBudget("purgeDeletedShipsBatch", 4, 1 + PURGE_BATCH_SIZE,
+            service -> service.purgeDeletedShipsBatch(PURGE_BATCH_SIZE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100})
+    void purgeCrewlessShipsBatch(int size) {
+        drainPurge();
+        seedShips(size);
+        inTransaction(service -> service.deleteRealmShips(realmId));
+        assertBudget("purgeCrewlessShipsBatch", 2, PURGE_BATCH_SIZE,
+            service -> service.purgeDeletedShipsBatch(PURGE_BATCH_SIZE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void getPurgeStatus(int size) {
+        String shipId = seedShips(1).get(0);
+        seedAssignments(seedUsers(size), List.of(shipId));
+        inTransaction(service -> service.deleteShip(shipId));
+        assertBudget("getPurgeStatus", 2, 2, service -> service.getPurgeStatus(realmId));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void getUserShips(int size) {
+        String userId = seedUsers(1).get(0);
+        seedAssignments(List.of(userId), seedShips(size));
+        assertBudget("getUserShips", 2, 2L * size, service -> service.getUserShips(realmId, userId));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void assignUserToShip(int size) {
+        String userId = seedUsers(1).get(0);
+        seedAssignments(List.of(userId), seedShips(size));
+        String shipId = seedShips(1).get(0);
+        assertBudget("assignUserToShip", 3, 1, service -> service.assignUserToShip(userId, shipId));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void removeUserFromShip(int size) {
+        String userId = seedUsers(1).get(0);
+        List<String> shipIds = seedShips(size);
+        seedAssignments(List.of(userId), shipIds);
+        assertBudget("removeUserFromShip", 1, 0, service -> service.removeUserFromShip(userId, shipIds.get(0)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 50, 600})
+    void lookupUserShips(int size) {
+        List<String> userIds = seedUsers(size);
+        List<String> shipIds = seedShips(size);
+        String sharedShipId = seedShips(1).get(0);
+        for (int i = 0; i < size; i++) {
+            seedAssignments(List.of(userIds.get(i)), List.of(shipIds.get(i), sharedShipId));
+        }
+        assertBudget("lookupUserShips", chunks(size) + chunks(size + 1), 2L * size + size + 1,
+            service -> service.lookupUserShips(realmId, userIds));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 50, 600})
+    void lookupShips(int size) {
+        List<String> shipIds = seedShips(size);
+        assertBudget("lookupShips", chunks(size), size, service -> service.lookupShips(realmId, shipIds, null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void upsertShipByExternalId(int size) {
+        seedShips(size);
+        ShipRepresentation ship = newShip();
+        inTransaction(service -> service.createShip(ship));
+        assertBudget("upsertShipByExternalId", 2, 1, service -> service.upsertShipByExternalId(ship));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100})
+    void exportShips(int size) {
+        List<String> shipIds = seedShips(size);
+        for (String shipId : shipIds) {
+            seedAssignments(seedUsers(1), List.of(shipId));
+        }
+        assertBudget("exportShips", 1, size, service -> {
+            try {
+                service.exportShips(realmId, null, new ByteArrayOutputStream());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    // Purges ships left pending by other tests so a batch works on this test's data
+    private void drainPurge() {
+        inTransaction(service -> {
+            while (service.purgeDeletedShipsBatch(DRAIN_BATCH_SIZE) > 0) {
+                // keep purging
+            }
+        });
+    }
+
+    private void assertBudget(String operation, long maxStatements, long maxRows, Consumer<ShipService> call) {
+        em.clear();
+        statistics.clear();
+        RowCountingConnectionProvider.reset();
+        inTransaction(call);
+
+        long statements = statistics.getPrepareStatementCount();
+        long rows = RowCountingConnectionProvider.rowsFetched();
+        assertTrue(statements <= maxStatements,
+            operation + " issued " + statements + " SQL statements, budget is " + maxStatements);
+        assertTrue(rows <= maxRows,
+            operation + " loaded " + rows + " rows, budget is " + maxRows);
+    }
+
+    private static int chunks(int size) {
+        return (size + ShipService.IN_CLAUSE_CHUNK_SIZE - 1) / ShipService.IN_CLAUSE_CHUNK_SIZE;
+    }
+}
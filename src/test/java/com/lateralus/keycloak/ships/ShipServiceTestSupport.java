@@ -0,0 +1,114 @@
+package com.lateralus.keycloak.ships;
+
+import com.lateralus.keycloak.ships.jpa.ShipEntity;
+import com.lateralus.keycloak.ships.jpa.UserShipEntity;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Embedded database and seeding helpers shared by the ShipService tests. ShipService runs
+ * against a mocked KeycloakSession whose JpaConnectionProvider hands out the test EntityManager.
+ */
+abstract class ShipServiceTestSupport {
+
+    protected static EntityManagerFactory emf;
+
+    protected EntityManager em;
+    protected String realmId;
+
+    @BeforeAll
+    static void createDatabase() {
+        emf = Persistence.createEntityManagerFactory("ships-test");
+    }
+
+    @AfterAll
+    static void dropDatabase() {
+        emf.close();
+    }
+
+    @BeforeEach
+    void openEntityManager() {
+        em = emf.createEntityManager();
+        // A fresh realm per test keeps data sets from different tests apart
+        realmId = UUID.randomUUID().toString();
+    }
+
+    @AfterEach
+    void closeEntityManager() {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+        em.close();
+    }
+
+    protected void inTransaction(Consumer<ShipService> call) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        JpaConnectionProvider jpa = mock(JpaConnectionProvider.class);
+        when(session.getProvider(JpaConnectionProvider.class)).thenReturn(jpa);
+        when(jpa.getEntityManager()).thenReturn(em);
+
+        em.getTransaction().begin();
+        call.accept(new ShipService(session));
+        em.getTransaction().commit();
+    }
+
+    protected List<String> seedShips(int count) {
+        List<String> ids = new ArrayList<>();
+        em.getTransaction().begin();
+        for (int i = 0; i < count; i++) {
+            ShipEntity ship = new ShipEntity();
+            ship.setId(UUID.randomUUID().toString());
+            ship.setName("Ship " + i);
+            ship.setRealmId(realmId);
+            em.persist(ship);
+            ids.add(ship.getId());
+        }
+        em.getTransaction().commit();
+        em.clear();
+        return ids;
+    }
+
+    protected List<String> seedUsers(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(UUID.randomUUID().toString());
+        }
+        return ids;
+    }
+
+    protected void seedAssignments(List<String> userIds, List<String> shipIds) {
+        em.getTransaction().begin();
+        for (String userId : userIds) {
+            for (String shipId : shipIds) {
+                UserShipEntity userShip = new UserShipEntity();
+                userShip.setUserId(userId);
+                userShip.setShipId(shipId);
+                em.persist(userShip);
+            }
+        }
+        em.getTransaction().commit();
+        em.clear();
+    }
+
+    protected ShipRepresentation newShip() {
+        ShipRepresentation ship = new ShipRepresentation();
+        ship.setName("New ship");
+        ship.setRealmId(realmId);
+        ship.setExternalId(UUID.randomUUID().toString().substring(0, 24));
+        return ship;
+    }
+}
@@ -0,0 +1,41 @@
+package com.lateralus.keycloak.ships;
+
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ModelDuplicateException;
+import jakarta.persistence.PersistenceException;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Only a lost insert race on the externalId index may be retried by the upsert endpoint.
+ */
+class ShipServiceUniqueViolationTest {
+
+    @Test
+    void externalIdIndexViolationIsRetryable() {
+        ConstraintViolationException violation = new ConstraintViolationException(
+            "duplicate", new SQLException("duplicate key"), "idx_ship_external_id");
+        assertTrue(ShipService.isExternalIdUniqueViolation(new ModelDuplicateException(violation)));
+    }
+
+    @Test
+    void constraintNameFallsBackToDriverMessage() {
+        ConstraintViolationException violation = new ConstraintViolationException(
+            "duplicate", new SQLException("Duplicate entry 'abc' for key 'ship.IDX_SHIP_EXTERNAL_ID'"), null);
+        assertTrue(ShipService.isExternalIdUniqueViolation(new PersistenceException(violation)));
+    }
+
+    @Test
+    void otherConstraintViolationsAreNotRetryable() {
+        ConstraintViolationException notNull = new ConstraintViolationException(
+            "not null", new SQLException("null value in column \"name\" violates not-null constraint"), null);
+        ConstraintViolationException foreignKey = new ConstraintViolationException(
+            "foreign key", new SQLException("foreign key violation"), "fk_user_ship_ship");
+        assertFalse(ShipService.isExternalIdUniqueViolation(new ModelDuplicateException(notNull)));
+        assertFalse(ShipService.isExternalIdUniqueViolation(foreignKey));
+        assertFalse(ShipService.isExternalIdUniqueViolation(new IllegalStateException("no transaction")));
+    }
+}